@@ -0,0 +1,128 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A thread local pool of byte arrays used to hold secret material while a
+ * token is calculated. Buffers are handed out in the exact size requested and
+ * are zeroed when they are released, so secret bytes do not linger on the
+ * heap and the token paths do not allocate a new array on every call.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ *
+ */
+public final class SecretBufferPool {
+
+    // a logger object. Make use of it!
+    private static final Logger _logger = Logger.getLogger(SecretBufferPool.class.getName());
+
+    // that many buffers of the same size are kept per thread
+    public static final int MAX_BUFFERS_PER_SIZE = 4;
+
+    // that many different buffer sizes are kept per thread
+    public static final int MAX_SIZES = 16;
+
+    // buffers larger than this are never pooled
+    public static final int MAX_POOLED_SIZE = 1024;
+
+    // the free buffers of the current thread, keyed by their size
+    private static final ThreadLocal<Map<Integer, ArrayDeque<byte[]>>> POOL = 
+            ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * this class only offers static methods
+     */
+    private SecretBufferPool() {
+    }
+
+    /**
+     * borrows a zeroed buffer of exactly the given size. Hand it back using
+     * release() once done
+     * 
+     * @param size
+     *            the size of the buffer
+     * @return the buffer
+     */
+    public static byte[] borrow(int size) {
+        ArrayDeque<byte[]> buffers = POOL.get().get(size);
+        byte[] buffer              = (buffers == null) ? null : buffers.pollFirst();
+        if (buffer == null) {
+            buffer = new byte[size];
+        }
+
+        return buffer;
+    }
+
+    /**
+     * zeroes a buffer and hands it back to the pool of the current thread. If
+     * the pool is full, the zeroed buffer is left to the garbage collector
+     * 
+     * @param buffer
+     *            the buffer to release. May be null
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        zeroize(buffer);
+
+        if (buffer.length > MAX_POOLED_SIZE) {
+            return;
+        }
+
+        Map<Integer, ArrayDeque<byte[]>> pool = POOL.get();
+        ArrayDeque<byte[]> buffers            = pool.get(buffer.length);
+        if (buffers == null) {
+            if (pool.size() >= MAX_SIZES) {
+                _logger.finest(String.format("not pooling buffer of size %d, too many sizes", buffer.length));
+                return;
+            }
+            buffers = new ArrayDeque<>(MAX_BUFFERS_PER_SIZE);
+            pool.put(buffer.length, buffers);
+        }
+
+        // a buffer must never be handed out twice
+        if (buffers.size() < MAX_BUFFERS_PER_SIZE && !containsInstance(buffers, buffer)) {
+            buffers.offerFirst(buffer);
+        }
+    }
+
+    /**
+     * overwrites a buffer with zeroes
+     * 
+     * @param buffer
+     *            the buffer to clear. May be null
+     */
+    public static void zeroize(byte[] buffer) {
+        if (buffer != null) {
+            Arrays.fill(buffer, (byte) 0);
+        }
+    }
+
+    /**
+     * checks whether a deque holds this very buffer instance
+     * 
+     * @param buffers
+     *            the deque to check
+     * @param buffer
+     *            the buffer to look for
+     * @return true if the instance is already pooled
+     */
+    private static boolean containsInstance(ArrayDeque<byte[]> buffers, byte[] buffer) {
+        for (byte[] pooled : buffers) {
+            if (pooled == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
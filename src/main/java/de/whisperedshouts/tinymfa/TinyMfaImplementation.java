@@ -252,15 +252,18 @@ public class TinyMfaImplementation {
                 "generateValidToken",
                 new Object[] {message, "***"});
         
-        int token = 0;
+        int token        = 0;
+        byte[] byteArray = null;
         
         try {
-            byte[] byteArray = charArrayToByteArray(base32SecretKey);
+            byteArray = charArrayToByteArray(base32SecretKey);
             token = generateValidToken(message, byteArray);
 
         } catch (InvalidKeyException | SignatureException | NoSuchAlgorithmException e) {
             _logger.severe(e.getMessage());
             throw new Exception(e.getMessage());
+        } finally {
+            SecretBufferPool.release(byteArray);
         }
 
         _logger.exiting(TinyMfaImplementation.class.getName(), 
@@ -286,48 +289,21 @@ public class TinyMfaImplementation {
                 "generateValidToken",
                 new Object[] {message, "***"});
 
-        int token           = 0;
-        byte[] keyBytes     = null;
-        byte[] messageBytes = null;
+        int token       = 0;
+        byte[] keyBytes = null;
         
         // let's process
         try {
             // the key is base32 encoded
             keyBytes = Base32Util.decode(base32SecretKey);
-            // get an 8byte array derived from the message
-            messageBytes = TinyMfaImplementation.messageToByteArray(message);
-            // generate the rfc2104hmac String out of timestamp and key
-            byte[] rfc2104hmac = TinyMfaImplementation.calculateRFC2104HMAC(messageBytes, keyBytes);
-
-            // get the decimal representation of the last byte
-            // this will be used as a offset. i.E if the last byte was 4 (as
-            // decimal), we will derive the dynamic trunacted result, starting at the 4th
-            // index of the byte array
-            int offset = rfc2104hmac[(rfc2104hmac.length - 1)] & 0xF;
-            if (_logger.isLoggable(Level.FINEST)) {
-                _logger.finest(String.format("using offset %d for dynamic truncation", (int) offset));
-            }
-            // probably int is too small (since there is no unsigned integer)
-            // therefore, a long variable is used
-            long dynamicTruncatedResult = 0;
-            for (int i = 0; i < DYNAMIC_TRUNCATION_WIDTH; ++i) {
-                // shift 8bit to the left to make room for the next byte
-                dynamicTruncatedResult <<= 8;
-                // perform a bitwise inclusive OR on the next offset
-                // this adds the next digit to the dynamic truncated result
-                dynamicTruncatedResult |= (rfc2104hmac[offset + i] & 0xFF);
-            }
-
-            // setting the most significant bit to 0
-            dynamicTruncatedResult &= 0x7FFFFFFF;
-            // making sure we get the right amount of numbers
-            dynamicTruncatedResult %= 1000000;
-
-            token = (int) dynamicTruncatedResult;
+            token    = calculateToken(message, keyBytes);
 
         } catch (InvalidKeyException | SignatureException | NoSuchAlgorithmException e) {
             _logger.severe(e.getMessage());
             throw new Exception(e.getMessage());
+        } finally {
+            // do not leave the decoded key lying around on the heap
+            SecretBufferPool.zeroize(keyBytes);
         }
 
         _logger.exiting(TinyMfaImplementation.class.getName(), 
@@ -337,6 +313,62 @@ public class TinyMfaImplementation {
         return token;
     }
 
+    /**
+     * calculates the token for a message and an already decoded secretKey
+     * 
+     * @param message
+     *            the timestamp to use when calculating the token
+     * @param keyBytes
+     *            the decoded secretKey
+     * @return the token
+     * @throws SignatureException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    private static int calculateToken(long message, byte[] keyBytes)
+            throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+        _logger.entering(TinyMfaImplementation.class.getName(), 
+                "calculateToken",
+                new Object[] {message, "***"});
+
+        // get an 8byte array derived from the message
+        byte[] messageBytes = TinyMfaImplementation.messageToByteArray(message);
+        // generate the rfc2104hmac String out of timestamp and key
+        byte[] rfc2104hmac  = TinyMfaImplementation.calculateRFC2104HMAC(messageBytes, keyBytes);
+
+        // get the decimal representation of the last byte
+        // this will be used as a offset. i.E if the last byte was 4 (as
+        // decimal), we will derive the dynamic trunacted result, starting at the 4th
+        // index of the byte array
+        int offset = rfc2104hmac[(rfc2104hmac.length - 1)] & 0xF;
+        if (_logger.isLoggable(Level.FINEST)) {
+            _logger.finest(String.format("using offset %d for dynamic truncation", (int) offset));
+        }
+        // probably int is too small (since there is no unsigned integer)
+        // therefore, a long variable is used
+        long dynamicTruncatedResult = 0;
+        for (int i = 0; i < DYNAMIC_TRUNCATION_WIDTH; ++i) {
+            // shift 8bit to the left to make room for the next byte
+            dynamicTruncatedResult <<= 8;
+            // perform a bitwise inclusive OR on the next offset
+            // this adds the next digit to the dynamic truncated result
+            dynamicTruncatedResult |= (rfc2104hmac[offset + i] & 0xFF);
+        }
+
+        // setting the most significant bit to 0
+        dynamicTruncatedResult &= 0x7FFFFFFF;
+        // making sure we get the right amount of numbers
+        dynamicTruncatedResult %= 1000000;
+
+        int token = (int) dynamicTruncatedResult;
+
+        _logger.exiting(TinyMfaImplementation.class.getName(), 
+                "calculateToken", 
+                token);
+
+        return token;
+    }
+
     /**
      * returns a message based on a "corrected timestamp" This method will get
      * the current system time (Milliseconds since 1970), then remove the
@@ -426,33 +458,98 @@ public class TinyMfaImplementation {
                 "validateToken",
                 new Object[] {token, "***"});
 
-        boolean result = false;
-        // validate against current timestamp. This should be working in most
-        // cases if times are synchronized
-        int generatedToken = generateValidToken(getValidMessageBySystemTimestamp(OFFSET_PRESENT), base32EncodedKey);
-        if (generatedToken == token) {
-            result = true;
-        }
+        boolean result = validateToken(token, base32EncodedKey, System.currentTimeMillis());
 
-        // if this was not successful, the user probably just missed the time
-        // window of 30 seconds. Testing a token in the past
-        if (result == false) {
-            generatedToken = generateValidToken(getValidMessageBySystemTimestamp(OFFSET_PAST), base32EncodedKey);
-            if (generatedToken == token) {
-                result = true;
-            }
-        }
+        // no matter what, we now return the result;
+        _logger.exiting(TinyMfaImplementation.class.getName(), 
+                "validateToken", 
+                result);
+
+        return result;
+    }
+
+    /**
+     * Tests a submitted token against the submitted base32EncodedKey at a
+     * given point in time. The token is accepted for the time window of the
+     * timestamp as well as for the windows right before and after it
+     * 
+     * @param token
+     *            the token to test
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account
+     * @param systemTimestamp
+     *            the timestamp to validate the token at
+     * @return true if the token could be authenticated
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public boolean validateToken(int token, byte[] base32EncodedKey, long systemTimestamp) throws Exception {
+        _logger.entering(TinyMfaImplementation.class.getName(), 
+                "validateToken",
+                new Object[] {token, "***", systemTimestamp});
+
+        // validate against current timestamp first. This should be working in
+        // most cases if times are synchronized. If this was not successful, the
+        // user probably just missed the time window of 30 seconds. If the token
+        // was still not authenticated, the user might have a phone that is
+        // slightly in front of our time
+        boolean result = validateToken(token, base32EncodedKey, systemTimestamp, 
+                OFFSET_PRESENT, OFFSET_PAST, OFFSET_FUTURE);
+
+        // no matter what, we now return the result;
+        _logger.exiting(TinyMfaImplementation.class.getName(), 
+                "validateToken", 
+                result);
+
+        return result;
+    }
 
-        // if the token was still not authenticated, the user might have a phone
-        // that is slightly in front of our time
-        if (result == false) {
-            generatedToken = generateValidToken(getValidMessageBySystemTimestamp(OFFSET_FUTURE), base32EncodedKey);
-            if (generatedToken == token) {
-                result = true;
+    /**
+     * Tests a submitted token against the submitted base32EncodedKey at a
+     * given point in time, trying the time windows in the order given
+     * 
+     * @param token
+     *            the token to test
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account
+     * @param systemTimestamp
+     *            the timestamp to validate the token at
+     * @param offsetTypes
+     *            the windows to test, in order. You can use the static
+     *            integers OFFSET_PRESENT, OFFSET_PAST and OFFSET_FUTURE.
+     * @return true if the token could be authenticated
+     * @throws Exception
+     *             when we hit an issue
+     */
+    boolean validateToken(int token, byte[] base32EncodedKey, long systemTimestamp, int... offsetTypes) 
+            throws Exception {
+        _logger.entering(TinyMfaImplementation.class.getName(), 
+                "validateToken",
+                new Object[] {token, "***", systemTimestamp, offsetTypes});
+
+        boolean result  = false;
+        byte[] keyBytes = null;
+
+        try {
+            // the key is base32 encoded. Decoding it once for all windows
+            keyBytes = Base32Util.decode(base32EncodedKey);
+
+            for (int i = 0; i < offsetTypes.length && result == false; i++) {
+                long message       = getValidMessageBySystemTimestamp(systemTimestamp, offsetTypes[i]);
+                int generatedToken = calculateToken(message, keyBytes);
+                if (generatedToken == token) {
+                    result = true;
+                }
             }
+
+        } catch (InvalidKeyException | SignatureException | NoSuchAlgorithmException e) {
+            _logger.severe(e.getMessage());
+            throw new Exception(e.getMessage());
+        } finally {
+            // do not leave the decoded key lying around on the heap
+            SecretBufferPool.zeroize(keyBytes);
         }
 
-        // no matter what, we now return the result;
         _logger.exiting(TinyMfaImplementation.class.getName(), 
                 "validateToken", 
                 result);
@@ -476,9 +573,42 @@ public class TinyMfaImplementation {
                 "validateToken",
                 new Object[] {token, "***"});
 
+        boolean result = validateToken(token, base32EncodedKey, System.currentTimeMillis());
+
+        // no matter what, we now return the result;
+        _logger.exiting(TinyMfaImplementation.class.getName(), 
+                "validateToken", 
+                result);
+
+        return result;
+    }
+
+    /**
+     * Tests a submitted token against the submitted base32EncodedKey at a
+     * given point in time
+     * 
+     * @param token
+     *            the token to test
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account
+     * @param systemTimestamp
+     *            the timestamp to validate the token at
+     * @return true if the token could be authenticated
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public boolean validateToken(int token, char[] base32EncodedKey, long systemTimestamp) throws Exception {
+        _logger.entering(TinyMfaImplementation.class.getName(), 
+                "validateToken",
+                new Object[] {token, "***", systemTimestamp});
+
         boolean result      = false;
         byte[] keyByteArray = charArrayToByteArray(base32EncodedKey);
-        result              = validateToken(token, keyByteArray);
+        try {
+            result = validateToken(token, keyByteArray, systemTimestamp);
+        } finally {
+            SecretBufferPool.release(keyByteArray);
+        }
 
         // no matter what, we now return the result;
         _logger.exiting(TinyMfaImplementation.class.getName(), 
@@ -574,7 +704,8 @@ public class TinyMfaImplementation {
     }
 
     /**
-     * converts a char array to its byte array representation
+     * converts a char array to its byte array representation. The result is
+     * borrowed from the SecretBufferPool and has to be released by the caller
      * 
      * @param charArray
      *            the char array to convert
@@ -582,7 +713,7 @@ public class TinyMfaImplementation {
      */
     private static byte[] charArrayToByteArray(char[] charArray) {
         _logger.entering(TinyMfaImplementation.class.getName(), "charArrayToByteArray");
-        byte[] result = new byte[charArray.length];
+        byte[] result = SecretBufferPool.borrow(charArray.length);
 
         for (int i = 0; i < charArray.length; i++) {
             result[i] = (byte) charArray[i];
@@ -0,0 +1,479 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Smooths the bursts of validations hitting the service right after a time
+ * step rolls over. Validations are admitted into a bounded priority queue and
+ * processed by a fixed amount of workers. Every validation is pinned to the
+ * timestamp it was admitted at, so queueing across a step boundary does not
+ * change its outcome. Validations admitted shortly before the boundary are
+ * considered borderline: they are served first and test the next time window
+ * ahead of the others.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ * 
+ */
+public class TokenValidationScheduler {
+
+    // a logger object. Make use of it!
+    private static final Logger _logger = Logger.getLogger(TokenValidationScheduler.class.getName());
+
+    // the length of a single time step
+    public static final long STEP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // validations admitted less than this before the boundary are borderline
+    public static final long DEFAULT_BORDERLINE_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    // that many validations may wait in the queue by default
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // the order the windows are tested in for a regular validation
+    private static final int[] REGULAR_OFFSETS    = {
+            TinyMfaImplementation.OFFSET_PRESENT,
+            TinyMfaImplementation.OFFSET_PAST,
+            TinyMfaImplementation.OFFSET_FUTURE };
+
+    // the order the windows are tested in for a borderline validation
+    private static final int[] BORDERLINE_OFFSETS = {
+            TinyMfaImplementation.OFFSET_FUTURE,
+            TinyMfaImplementation.OFFSET_PRESENT,
+            TinyMfaImplementation.OFFSET_PAST };
+
+    // the implementation doing the actual work
+    private final TinyMfaImplementation tinyMfa;
+
+    // the workers processing the queue
+    private final ThreadPoolExecutor executor;
+
+    // the source of the current time in milliseconds
+    private final LongSupplier clock;
+
+    // the amount of validations allowed to wait in the queue
+    private final int queueCapacity;
+
+    // validations admitted less than this before the boundary are borderline
+    private final long borderlineMillis;
+
+    // used to keep the admission order among validations of the same priority
+    private final AtomicLong sequence = new AtomicLong();
+
+    // metrics
+    private final AtomicInteger queueDepth     = new AtomicInteger();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final AtomicLong admittedCount     = new AtomicLong();
+    private final AtomicLong borderlineCount   = new AtomicLong();
+    private final AtomicLong rejectedCount     = new AtomicLong();
+    private final AtomicLong completedCount    = new AtomicLong();
+    private final AtomicLong cancelledCount    = new AtomicLong();
+
+    /**
+     * creates a scheduler using one worker per available processor and the
+     * default queue capacity and borderline window
+     * 
+     * @param tinyMfa
+     *            the implementation used to validate the tokens
+     */
+    public TokenValidationScheduler(TinyMfaImplementation tinyMfa) {
+        this(tinyMfa, Runtime.getRuntime().availableProcessors(),
+                DEFAULT_QUEUE_CAPACITY, DEFAULT_BORDERLINE_MILLIS);
+    }
+
+    /**
+     * creates a scheduler using the system clock
+     * 
+     * @param tinyMfa
+     *            the implementation used to validate the tokens
+     * @param workers
+     *            the amount of worker threads
+     * @param queueCapacity
+     *            the amount of validations allowed to wait in the queue
+     * @param borderlineMillis
+     *            validations admitted less than this before the boundary are
+     *            borderline
+     */
+    public TokenValidationScheduler(TinyMfaImplementation tinyMfa, int workers, int queueCapacity,
+            long borderlineMillis) {
+        this(tinyMfa, workers, queueCapacity, borderlineMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * creates a scheduler
+     * 
+     * @param tinyMfa
+     *            the implementation used to validate the tokens
+     * @param workers
+     *            the amount of worker threads
+     * @param queueCapacity
+     *            the amount of validations allowed to wait in the queue
+     * @param borderlineMillis
+     *            validations admitted less than this before the boundary are
+     *            borderline
+     * @param clock
+     *            the source of the current time in milliseconds
+     */
+    public TokenValidationScheduler(TinyMfaImplementation tinyMfa, int workers, int queueCapacity,
+            long borderlineMillis, LongSupplier clock) {
+        if (tinyMfa == null || clock == null) {
+            throw new IllegalArgumentException("tinyMfa and clock must not be null");
+        }
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "workers and queueCapacity must be positive, were %d and %d", workers, queueCapacity));
+        }
+        if (borderlineMillis < 0 || borderlineMillis >= STEP_MILLIS) {
+            throw new IllegalArgumentException(String.format(
+                    "borderlineMillis must be between 0 and %d, was %d", STEP_MILLIS, borderlineMillis));
+        }
+
+        this.tinyMfa          = tinyMfa;
+        this.clock            = clock;
+        this.queueCapacity    = queueCapacity;
+        this.borderlineMillis = borderlineMillis;
+        this.executor         = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory());
+    }
+
+    /**
+     * returns the milliseconds left until the current time step rolls over
+     * 
+     * @param systemTimestamp
+     *            the timestamp to use
+     * @return the milliseconds until the next step boundary
+     */
+    public static long getMillisUntilStepBoundary(long systemTimestamp) {
+        long stepStart = TinyMfaImplementation.getValidMessageBySystemTimestamp(systemTimestamp) * STEP_MILLIS;
+        return (stepStart + STEP_MILLIS) - systemTimestamp;
+    }
+
+    /**
+     * checks whether a validation admitted at the given timestamp is
+     * borderline, i.E. the step is about to roll over
+     * 
+     * @param systemTimestamp
+     *            the timestamp to use
+     * @return true if the validation is borderline
+     */
+    public boolean isBorderline(long systemTimestamp) {
+        return getMillisUntilStepBoundary(systemTimestamp) <= borderlineMillis;
+    }
+
+    /**
+     * admits a validation into the queue
+     * 
+     * @param token
+     *            the token to test
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account. A copy is taken, the
+     *            caller may clear the array once this method returns
+     * @return the future result of the validation
+     * @throws RejectedExecutionException
+     *             when the queue is full or the scheduler was shut down
+     */
+    public Future<Boolean> submit(int token, byte[] base32EncodedKey) {
+        return submitCopy(token, Arrays.copyOf(base32EncodedKey, base32EncodedKey.length));
+    }
+
+    /**
+     * admits a validation into the queue
+     * 
+     * @param token
+     *            the token to test
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account. A copy is taken, the
+     *            caller may clear the array once this method returns
+     * @return the future result of the validation
+     * @throws RejectedExecutionException
+     *             when the queue is full or the scheduler was shut down
+     */
+    public Future<Boolean> submit(int token, char[] base32EncodedKey) {
+        byte[] keyCopy = new byte[base32EncodedKey.length];
+        for (int i = 0; i < base32EncodedKey.length; i++) {
+            keyCopy[i] = (byte) base32EncodedKey[i];
+        }
+        return submitCopy(token, keyCopy);
+    }
+
+    /**
+     * admits a validation into the queue. The key copy is owned by the
+     * scheduler from here on and cleared once the validation is done or
+     * could not be admitted
+     * 
+     * @param token
+     *            the token to test
+     * @param keyCopy
+     *            a private copy of the base32 encoded key of the account
+     * @return the future result of the validation
+     * @throws RejectedExecutionException
+     *             when the queue is full or the scheduler was shut down
+     */
+    private Future<Boolean> submitCopy(int token, byte[] keyCopy) {
+        _logger.entering(TokenValidationScheduler.class.getName(),
+                "submitCopy",
+                new Object[] {token, "***"});
+
+        // reading the clock before taking a slot in the queue, so a failing
+        // clock cannot leak it
+        long admittedAt;
+        try {
+            admittedAt = clock.getAsLong();
+        } catch (RuntimeException e) {
+            SecretBufferPool.zeroize(keyCopy);
+            throw e;
+        }
+        boolean borderline = isBorderline(admittedAt);
+
+        if (queueDepth.incrementAndGet() > queueCapacity) {
+            queueDepth.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            SecretBufferPool.zeroize(keyCopy);
+            throw new RejectedExecutionException(String.format(
+                    "validation queue is full (capacity %d)", queueCapacity));
+        }
+        updatePeakQueueDepth();
+
+        ValidationTask task = new ValidationTask(token, keyCopy, admittedAt, borderline,
+                sequence.getAndIncrement());
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.leaveQueue();
+            rejectedCount.incrementAndGet();
+            SecretBufferPool.zeroize(keyCopy);
+            throw e;
+        }
+
+        admittedCount.incrementAndGet();
+        if (borderline) {
+            borderlineCount.incrementAndGet();
+        }
+
+        _logger.exiting(TokenValidationScheduler.class.getName(), "submitCopy", borderline);
+
+        return task;
+    }
+
+    /**
+     * stops accepting validations. Already admitted validations are still
+     * processed
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * waits for the admitted validations to finish after a shutdown
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of the timeout
+     * @return true if all workers finished
+     * @throws InterruptedException
+     *             when interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * returns the amount of validations currently waiting in the queue
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * returns the highest queue depth seen since the last reset
+     * 
+     * @return the peak queue depth
+     */
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * resets the peak queue depth to the current queue depth, i.E. to start
+     * measuring a new time step
+     * 
+     * @return the peak queue depth before the reset
+     */
+    public int resetPeakQueueDepth() {
+        return peakQueueDepth.getAndSet(queueDepth.get());
+    }
+
+    /**
+     * returns the amount of validations the queue may hold
+     * 
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * returns the amount of validations admitted into the queue
+     * 
+     * @return the admitted count
+     */
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * returns the amount of admitted validations that were borderline
+     * 
+     * @return the borderline count
+     */
+    public long getBorderlineCount() {
+        return borderlineCount.get();
+    }
+
+    /**
+     * returns the amount of validations rejected because the queue was full
+     * or the scheduler was shut down
+     * 
+     * @return the rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * returns the amount of validations that finished processing, including
+     * the cancelled ones
+     * 
+     * @return the completed count
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * returns the amount of validations that were cancelled by the caller
+     * 
+     * @return the cancelled count
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * raises the peak queue depth to the current queue depth if necessary
+     */
+    private void updatePeakQueueDepth() {
+        int depth = queueDepth.get();
+        int peak  = peakQueueDepth.get();
+        while (depth > peak && !peakQueueDepth.compareAndSet(peak, depth)) {
+            peak = peakQueueDepth.get();
+        }
+    }
+
+    /**
+     * A validation waiting in the queue. Borderline validations go first,
+     * otherwise validations are processed in the order they were admitted.
+     * The task leaves the queue either when a worker picks it up or when it
+     * is cancelled, whatever happens first
+     */
+    private class ValidationTask extends FutureTask<Boolean> implements Comparable<ValidationTask> {
+
+        // the copy of the key, cleared once the task is done
+        private final byte[] keyCopy;
+
+        // whether the step was about to roll over on admission
+        private final boolean borderline;
+
+        // the admission order
+        private final long sequence;
+
+        // whether the task still counts towards the queue depth
+        private final AtomicBoolean queued = new AtomicBoolean(true);
+
+        ValidationTask(int token, byte[] keyCopy, long admittedAt, boolean borderline, long sequence) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return tinyMfa.validateToken(token, keyCopy, admittedAt,
+                            borderline ? BORDERLINE_OFFSETS : REGULAR_OFFSETS);
+                }
+            });
+            this.keyCopy    = keyCopy;
+            this.borderline = borderline;
+            this.sequence   = sequence;
+        }
+
+        @Override
+        public void run() {
+            leaveQueue();
+            super.run();
+        }
+
+        /**
+         * called exactly once, when the validation finished, failed or was
+         * cancelled
+         */
+        @Override
+        protected void done() {
+            leaveQueue();
+            SecretBufferPool.zeroize(keyCopy);
+            if (isCancelled()) {
+                cancelledCount.incrementAndGet();
+            }
+            completedCount.incrementAndGet();
+        }
+
+        /**
+         * removes the task from the queue depth, at most once
+         */
+        void leaveQueue() {
+            if (queued.compareAndSet(true, false)) {
+                queueDepth.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(ValidationTask other) {
+            if (borderline != other.borderline) {
+                return borderline ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * creates named daemon threads for the workers
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        // used to number the workers
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "tinymfa-validation-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa.sharding;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+/**
+ * A consistent hash ring that maps account ids to node ids. Every node is
+ * placed on the ring several times (virtual nodes) so that keys are spread
+ * evenly and adding or removing a node only moves the keys of its
+ * neighbouring ring segments.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ *
+ */
+public class ConsistentHashRing {
+
+    // a logger object. Make use of it!
+    private static final Logger _logger = Logger.getLogger(ConsistentHashRing.class.getName());
+
+    // this is the algorithm that is used to place keys on the ring
+    public static final String HASH_ALGORITHM = "MD5";
+
+    // that many virtual nodes are placed on the ring per node by default
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    // looking up a digest takes a lock in the security providers, so every
+    // thread keeps its own
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support MD5
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    });
+
+    // the number of virtual nodes each node gets on the ring
+    private final int virtualNodes;
+
+    // the ring itself. Lookups are lock free, so routing scales with the callers
+    private final NavigableMap<Long, String> ring = new ConcurrentSkipListMap<>();
+
+    /**
+     * creates a ring using DEFAULT_VIRTUAL_NODES virtual nodes per node
+     */
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * creates a ring using the given amount of virtual nodes per node
+     * 
+     * @param virtualNodes
+     *            the amount of virtual nodes per node. Must be positive
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "virtualNodes must be positive, was %d", virtualNodes));
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * places a node on the ring
+     * 
+     * @param nodeId
+     *            the id of the node to add
+     */
+    public synchronized void addNode(String nodeId) {
+        _logger.entering(ConsistentHashRing.class.getName(), "addNode", nodeId);
+
+        for (int i = 0; i < virtualNodes; i++) {
+            long position = hash(nodeId + "#" + i);
+            // on a (very unlikely) collision, the first node keeps the position
+            ring.putIfAbsent(position, nodeId);
+        }
+
+        _logger.exiting(ConsistentHashRing.class.getName(), "addNode");
+    }
+
+    /**
+     * removes a node from the ring
+     * 
+     * @param nodeId
+     *            the id of the node to remove
+     */
+    public synchronized void removeNode(String nodeId) {
+        _logger.entering(ConsistentHashRing.class.getName(), "removeNode", nodeId);
+
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(nodeId + "#" + i), nodeId);
+        }
+
+        _logger.exiting(ConsistentHashRing.class.getName(), "removeNode");
+    }
+
+    /**
+     * returns the node owning the given key
+     * 
+     * @param key
+     *            the key (usually an account id) to look up
+     * @return the id of the owning node or null if the ring is empty
+     */
+    public String getNode(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        // walk clockwise to the next virtual node, wrapping around at the end
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+
+        // the ring may have been emptied concurrently
+        return (entry == null) ? null : entry.getValue();
+    }
+
+    /**
+     * returns the ids of all nodes currently placed on the ring
+     * 
+     * @return the node ids
+     */
+    public Set<String> getNodes() {
+        return new TreeSet<>(ring.values());
+    }
+
+    /**
+     * checks whether a node is placed on the ring
+     * 
+     * @param nodeId
+     *            the id of the node
+     * @return true if the node is on the ring
+     */
+    public boolean containsNode(String nodeId) {
+        return ring.containsValue(nodeId);
+    }
+
+    /**
+     * returns the amount of virtual nodes per node
+     * 
+     * @return the amount of virtual nodes per node
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * calculates the position of a key on the ring
+     * 
+     * @param key
+     *            the key to hash
+     * @return the first 8 bytes of the digest as a long
+     */
+    private static long hash(String key) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+
+        byte[] bytes = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        long result  = 0;
+        for (int i = 0; i < 8; ++i) {
+            result <<= 8;
+            result |= (bytes[i] & 0xFF);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa.sharding;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A transport that dispatches directly to ShardNode objects living in the
+ * same JVM. Useful for tests and for running all partitions in one process.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ *
+ */
+public class InProcessShardTransport implements ShardTransport {
+
+    // the nodes reachable through this transport, keyed by node id
+    private final Map<String, ShardNode> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * makes a node reachable through this transport
+     * 
+     * @param node
+     *            the node to register
+     */
+    public void register(ShardNode node) {
+        nodes.put(node.getNodeId(), node);
+    }
+
+    /**
+     * makes a node unreachable through this transport
+     * 
+     * @param nodeId
+     *            the id of the node to unregister
+     */
+    public void unregister(String nodeId) {
+        nodes.remove(nodeId);
+    }
+
+    @Override
+    public boolean validateToken(String nodeId, String accountId, int token) throws Exception {
+        return getNode(nodeId).validateToken(accountId, token);
+    }
+
+    @Override
+    public void storeSecret(String nodeId, String accountId, char[] base32EncodedKey) throws Exception {
+        getNode(nodeId).storeSecret(accountId, base32EncodedKey);
+    }
+
+    @Override
+    public char[] getSecret(String nodeId, String accountId) throws Exception {
+        return getNode(nodeId).getSecret(accountId);
+    }
+
+    @Override
+    public char[] removeSecret(String nodeId, String accountId) throws Exception {
+        return getNode(nodeId).removeSecret(accountId);
+    }
+
+    @Override
+    public Set<String> getAccountIds(String nodeId) throws Exception {
+        return getNode(nodeId).getAccountIds();
+    }
+
+    /**
+     * looks up a registered node
+     * 
+     * @param nodeId
+     *            the id of the node
+     * @return the node
+     * @throws Exception
+     *             when the node is not registered
+     */
+    private ShardNode getNode(String nodeId) throws Exception {
+        ShardNode node = nodes.get(nodeId);
+        if (node == null) {
+            throw new Exception(String.format("node '%s' is not registered", nodeId));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa.sharding;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.whisperedshouts.tinymfa.TinyMfaImplementation;
+
+/**
+ * A single partition holding the secrets of the accounts it owns and
+ * validating their tokens locally.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ *
+ */
+public class ShardNode {
+
+    // a logger object. Make use of it!
+    private static final Logger _logger = Logger.getLogger(ShardNode.class.getName());
+
+    // the id of this node on the ring
+    private final String nodeId;
+
+    // the secrets owned by this node, keyed by account id
+    private final Map<String, char[]> secrets = new ConcurrentHashMap<>();
+
+    // the implementation doing the actual work
+    private final TinyMfaImplementation tinyMfa = new TinyMfaImplementation();
+
+    // the source of the current time in milliseconds
+    private final LongSupplier clock;
+
+    /**
+     * creates a new, empty node using the system clock
+     * 
+     * @param nodeId
+     *            the id of this node on the ring
+     */
+    public ShardNode(String nodeId) {
+        this(nodeId, System::currentTimeMillis);
+    }
+
+    /**
+     * creates a new, empty node
+     * 
+     * @param nodeId
+     *            the id of this node on the ring
+     * @param clock
+     *            the source of the current time in milliseconds
+     */
+    public ShardNode(String nodeId, LongSupplier clock) {
+        if (nodeId == null || clock == null) {
+            throw new IllegalArgumentException("nodeId and clock must not be null");
+        }
+        this.nodeId = nodeId;
+        this.clock  = clock;
+    }
+
+    /**
+     * returns the id of this node
+     * 
+     * @return the node id
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Tests a submitted token against the secret stored for an account
+     * 
+     * @param accountId
+     *            the account to validate the token for
+     * @param token
+     *            the token to test
+     * @return true if the token could be authenticated, false if it could not
+     *         or the account is not stored on this node
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public boolean validateToken(String accountId, int token) throws Exception {
+        _logger.entering(ShardNode.class.getName(), 
+                "validateToken",
+                new Object[] {accountId, token});
+
+        boolean result          = false;
+        char[] base32EncodedKey = secrets.get(accountId);
+        if (base32EncodedKey != null) {
+            result = tinyMfa.validateToken(token, base32EncodedKey, clock.getAsLong());
+        } else {
+            // expected for every moved account while a rebalance is running,
+            // and the account id is supplied by the caller
+            if (_logger.isLoggable(Level.FINE)) {
+                _logger.fine(String.format("account '%s' is not stored on node '%s'", accountId, nodeId));
+            }
+        }
+
+        _logger.exiting(ShardNode.class.getName(), 
+                "validateToken", 
+                result);
+
+        return result;
+    }
+
+    /**
+     * stores a copy of the base32 encoded secret of an account. A previously
+     * stored secret is cleared
+     * 
+     * @param accountId
+     *            the account the secret belongs to
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account
+     */
+    public void storeSecret(String accountId, char[] base32EncodedKey) {
+        _logger.entering(ShardNode.class.getName(), 
+                "storeSecret",
+                new Object[] {accountId, "***"});
+
+        char[] previous = secrets.put(accountId, Arrays.copyOf(base32EncodedKey, base32EncodedKey.length));
+        if (previous != null) {
+            Arrays.fill(previous, '\0');
+        }
+
+        _logger.exiting(ShardNode.class.getName(), "storeSecret");
+    }
+
+    /**
+     * reads the secret of an account from this node
+     * 
+     * @param accountId
+     *            the account the secret belongs to
+     * @return a copy of the base32 encoded key of the account or null if
+     *         unknown
+     */
+    public char[] getSecret(String accountId) {
+        char[] base32EncodedKey = secrets.get(accountId);
+        return (base32EncodedKey == null) ? null : Arrays.copyOf(base32EncodedKey, base32EncodedKey.length);
+    }
+
+    /**
+     * removes the secret of an account from this node
+     * 
+     * @param accountId
+     *            the account the secret belongs to
+     * @return the base32 encoded key of the account or null if unknown
+     */
+    public char[] removeSecret(String accountId) {
+        _logger.entering(ShardNode.class.getName(), "removeSecret", accountId);
+
+        char[] result = secrets.remove(accountId);
+
+        _logger.exiting(ShardNode.class.getName(), "removeSecret", "***");
+
+        return result;
+    }
+
+    /**
+     * lists the accounts stored on this node
+     * 
+     * @return a snapshot of the stored account ids
+     */
+    public Set<String> getAccountIds() {
+        return new HashSet<>(secrets.keySet());
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa.sharding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Routes secrets and token validations to the node owning an account. The
+ * owner is determined by a consistent hash ring, so adding or removing a node
+ * only moves the accounts whose owner actually changes.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ *
+ */
+public class ShardRouter {
+
+    // a logger object. Make use of it!
+    private static final Logger _logger = Logger.getLogger(ShardRouter.class.getName());
+
+    // the transport used to reach the nodes
+    private final ShardTransport transport;
+
+    // the amount of virtual nodes each node gets on the ring
+    private final int virtualNodes;
+
+    // the rings currently used for routing. Replaced as a whole, so readers
+    // always see a ring and its previous ring that belong together
+    private volatile RoutingState state;
+
+    /**
+     * creates a router using DEFAULT_VIRTUAL_NODES virtual nodes per node
+     * 
+     * @param transport
+     *            the transport used to reach the nodes
+     */
+    public ShardRouter(ShardTransport transport) {
+        this(transport, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * creates a router
+     * 
+     * @param transport
+     *            the transport used to reach the nodes
+     * @param virtualNodes
+     *            the amount of virtual nodes per node
+     */
+    public ShardRouter(ShardTransport transport, int virtualNodes) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
+        }
+        this.transport    = transport;
+        this.virtualNodes = virtualNodes;
+        this.state        = new RoutingState(new ConsistentHashRing(virtualNodes), null);
+    }
+
+    /**
+     * returns the node currently owning an account
+     * 
+     * @param accountId
+     *            the account to look up
+     * @return the id of the owning node
+     * @throws Exception
+     *             when no node is available
+     */
+    public String getOwner(String accountId) throws Exception {
+        String nodeId = state.ring.getNode(accountId);
+        if (nodeId == null) {
+            throw new Exception("no node available");
+        }
+        return nodeId;
+    }
+
+    /**
+     * returns the ids of all nodes taking part in the ring
+     * 
+     * @return the node ids
+     */
+    public Set<String> getNodes() {
+        return state.ring.getNodes();
+    }
+
+    /**
+     * stores the base32 encoded secret of an account on its owning node.
+     * Waits while a rebalance is running
+     * 
+     * @param accountId
+     *            the account the secret belongs to
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public synchronized void storeSecret(String accountId, char[] base32EncodedKey) throws Exception {
+        _logger.entering(ShardRouter.class.getName(), 
+                "storeSecret",
+                new Object[] {accountId, "***"});
+
+        transport.storeSecret(getOwner(accountId), accountId, base32EncodedKey);
+
+        _logger.exiting(ShardRouter.class.getName(), "storeSecret");
+    }
+
+    /**
+     * removes the secret of an account from its owning node. Waits while a
+     * rebalance is running
+     * 
+     * @param accountId
+     *            the account the secret belongs to
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public synchronized void removeSecret(String accountId) throws Exception {
+        _logger.entering(ShardRouter.class.getName(), "removeSecret", accountId);
+
+        char[] base32EncodedKey = transport.removeSecret(getOwner(accountId), accountId);
+        if (base32EncodedKey != null) {
+            Arrays.fill(base32EncodedKey, '\0');
+        }
+
+        _logger.exiting(ShardRouter.class.getName(), "removeSecret");
+    }
+
+    /**
+     * Tests a submitted token on the node owning the account
+     * 
+     * @param accountId
+     *            the account to validate the token for
+     * @param token
+     *            the token to test
+     * @return true if the token could be authenticated
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public boolean validateToken(String accountId, int token) throws Exception {
+        _logger.entering(ShardRouter.class.getName(), 
+                "validateToken",
+                new Object[] {accountId, token});
+
+        RoutingState routing = state;
+        boolean result       = validateToken(routing, accountId, token);
+
+        // a rebalance may have started, finished or been rolled back while we
+        // were asking, moving the account away. Trying once more on the
+        // current rings
+        if (result == false) {
+            RoutingState current = state;
+            if (current != routing) {
+                result = validateToken(current, accountId, token);
+            }
+        }
+
+        _logger.exiting(ShardRouter.class.getName(), 
+                "validateToken", 
+                result);
+
+        return result;
+    }
+
+    /**
+     * Tests a submitted token on the owner of the account within the given
+     * rings. While a rebalance is running, the account may not have been
+     * copied to its new owner yet, so the previous owner is asked as well
+     * 
+     * @param routing
+     *            the rings to route by
+     * @param accountId
+     *            the account to validate the token for
+     * @param token
+     *            the token to test
+     * @return true if the token could be authenticated
+     * @throws Exception
+     *             when we hit an issue
+     */
+    private boolean validateToken(RoutingState routing, String accountId, int token) throws Exception {
+        String nodeId = routing.ring.getNode(accountId);
+        if (nodeId == null) {
+            throw new Exception("no node available");
+        }
+        boolean result = transport.validateToken(nodeId, accountId, token);
+
+        if (result == false && routing.previous != null) {
+            String previousNodeId = routing.previous.getNode(accountId);
+            if (previousNodeId != null && !previousNodeId.equals(nodeId)) {
+                result = transport.validateToken(previousNodeId, accountId, token);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * adds a node to the ring and moves the accounts it now owns over to it.
+     * The node must already be reachable through the transport. If a move
+     * fails, the ring is left as it was
+     * 
+     * @param nodeId
+     *            the id of the node to add
+     * @return the amount of accounts that were moved
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public synchronized int addNode(String nodeId) throws Exception {
+        _logger.entering(ShardRouter.class.getName(), "addNode", nodeId);
+
+        int moved = 0;
+        if (!state.ring.containsNode(nodeId)) {
+            // fail early if the node cannot be reached
+            transport.getAccountIds(nodeId);
+
+            ConsistentHashRing next = copyRing();
+            next.addNode(nodeId);
+            moved = rebalance(next, next.getNodes());
+        }
+
+        _logger.exiting(ShardRouter.class.getName(), "addNode", moved);
+
+        return moved;
+    }
+
+    /**
+     * removes a node from the ring and moves all of its accounts to their new
+     * owners. The node must stay reachable through the transport until this
+     * method returns. If a move fails, the ring is left as it was
+     * 
+     * @param nodeId
+     *            the id of the node to remove
+     * @return the amount of accounts that were moved
+     * @throws Exception
+     *             when we hit an issue
+     */
+    public synchronized int removeNode(String nodeId) throws Exception {
+        _logger.entering(ShardRouter.class.getName(), "removeNode", nodeId);
+
+        int moved = 0;
+        if (state.ring.containsNode(nodeId)) {
+            ConsistentHashRing next = copyRing();
+            next.removeNode(nodeId);
+            if (next.getNodes().isEmpty() && !transport.getAccountIds(nodeId).isEmpty()) {
+                throw new Exception(String.format(
+                        "cannot remove node '%s', it is the last node holding accounts", nodeId));
+            }
+            moved = rebalance(next, state.ring.getNodes());
+        }
+
+        _logger.exiting(ShardRouter.class.getName(), "removeNode", moved);
+
+        return moved;
+    }
+
+    /**
+     * switches routing to the next ring and moves every account whose owner
+     * changed. Accounts keeping their owner are not touched. Every account is
+     * first copied to its new owner and only removed from its old owner once
+     * all copies succeeded. Until then, validations fall back to the previous
+     * ring. If a copy fails, the copies made so far are removed again and
+     * routing switches back to the previous ring
+     * 
+     * @param next
+     *            the ring to switch to
+     * @param nodes
+     *            the nodes that may hold accounts right now
+     * @return the amount of accounts that were moved
+     * @throws Exception
+     *             when we hit an issue
+     */
+    private int rebalance(ConsistentHashRing next, Set<String> nodes) throws Exception {
+        // what every node holds right now. Writes wait for the rebalance,
+        // so this does not change underneath us
+        Map<String, Set<String>> accountIds = new HashMap<>();
+        for (String nodeId : nodes) {
+            accountIds.put(nodeId, transport.getAccountIds(nodeId));
+        }
+
+        // the accounts to remove from their old node, keyed by that node
+        Map<String, List<String>> leaving = new HashMap<>();
+        // the accounts copied to their new owner, keyed by that owner
+        Map<String, List<String>> copied  = new HashMap<>();
+        ConsistentHashRing current        = state.ring;
+        int moved                         = 0;
+
+        state = new RoutingState(next, current);
+        try {
+            for (Map.Entry<String, Set<String>> entry : accountIds.entrySet()) {
+                String nodeId = entry.getKey();
+                for (String accountId : entry.getValue()) {
+                    String owner = next.getNode(accountId);
+                    if (nodeId.equals(owner)) {
+                        continue;
+                    }
+
+                    // only the current owner holds the authoritative secret.
+                    // Anything else is a leftover of an earlier, partially
+                    // failed rebalance and is just removed
+                    if (nodeId.equals(current.getNode(accountId))) {
+                        copySecret(nodeId, owner, accountId);
+                        copied.computeIfAbsent(owner, k -> new ArrayList<>()).add(accountId);
+                        moved++;
+                    }
+                    leaving.computeIfAbsent(nodeId, k -> new ArrayList<>()).add(accountId);
+                }
+            }
+        } catch (Exception e) {
+            _logger.severe(String.format("rebalance failed, switching back to the previous ring: %s", e.getMessage()));
+            // the old owners still hold every account. Keeping the next ring
+            // as a fallback while the copies are removed again
+            state = new RoutingState(current, next);
+            removeSecrets(copied);
+            state = new RoutingState(current, null);
+            throw e;
+        }
+        state = new RoutingState(next, null);
+
+        // every account is on its new owner now. Cleaning up the old owners
+        // is best effort, leftovers are dropped by the next rebalance
+        removeSecrets(leaving);
+
+        _logger.fine(String.format("rebalanced %d accounts onto %d nodes", moved, next.getNodes().size()));
+
+        return moved;
+    }
+
+    /**
+     * copies the secret of an account from one node to another
+     * 
+     * @param fromNodeId
+     *            the node holding the secret
+     * @param toNodeId
+     *            the node to copy the secret to
+     * @param accountId
+     *            the account the secret belongs to
+     * @throws Exception
+     *             when we hit an issue
+     */
+    private void copySecret(String fromNodeId, String toNodeId, String accountId) throws Exception {
+        char[] base32EncodedKey = transport.getSecret(fromNodeId, accountId);
+        if (base32EncodedKey == null) {
+            throw new Exception(String.format(
+                    "account '%s' vanished from node '%s'", accountId, fromNodeId));
+        }
+        try {
+            transport.storeSecret(toNodeId, accountId, base32EncodedKey);
+        } finally {
+            Arrays.fill(base32EncodedKey, '\0');
+        }
+    }
+
+    /**
+     * removes secrets from their nodes, logging any failure
+     * 
+     * @param accountIds
+     *            the accounts to remove, keyed by the node holding them
+     */
+    private void removeSecrets(Map<String, List<String>> accountIds) {
+        for (Map.Entry<String, List<String>> entry : accountIds.entrySet()) {
+            for (String accountId : entry.getValue()) {
+                try {
+                    char[] base32EncodedKey = transport.removeSecret(entry.getKey(), accountId);
+                    if (base32EncodedKey != null) {
+                        Arrays.fill(base32EncodedKey, '\0');
+                    }
+                } catch (Exception e) {
+                    _logger.severe(String.format("could not remove account '%s' from node '%s': %s", 
+                            accountId, entry.getKey(), e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * creates a new ring containing the same nodes as the current one
+     * 
+     * @return the copy
+     */
+    private ConsistentHashRing copyRing() {
+        ConsistentHashRing copy = new ConsistentHashRing(virtualNodes);
+        for (String nodeId : state.ring.getNodes()) {
+            copy.addNode(nodeId);
+        }
+        return copy;
+    }
+
+    /**
+     * The ring used for routing together with the ring it replaces while a
+     * rebalance is running
+     */
+    private static final class RoutingState {
+
+        // the ring to route by
+        private final ConsistentHashRing ring;
+
+        // the ring used before the running rebalance, null if none is running
+        private final ConsistentHashRing previous;
+
+        RoutingState(ConsistentHashRing ring, ConsistentHashRing previous) {
+            this.ring     = ring;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+
+package de.whisperedshouts.tinymfa.sharding;
+
+import java.util.Set;
+
+/**
+ * Carries requests from the router to the node owning an account. An
+ * implementation may call into the same JVM or talk to a remote node.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ * @version 1.2
+ *
+ */
+public interface ShardTransport {
+
+    /**
+     * validates a token on the given node
+     * 
+     * @param nodeId
+     *            the node owning the account
+     * @param accountId
+     *            the account to validate the token for
+     * @param token
+     *            the token to test
+     * @return true if the token could be authenticated
+     * @throws Exception
+     *             when we hit an issue
+     */
+    boolean validateToken(String nodeId, String accountId, int token) throws Exception;
+
+    /**
+     * stores the base32 encoded secret of an account on the given node
+     * 
+     * @param nodeId
+     *            the node to store the secret on
+     * @param accountId
+     *            the account the secret belongs to
+     * @param base32EncodedKey
+     *            the base32 encoded key of the account
+     * @throws Exception
+     *             when we hit an issue
+     */
+    void storeSecret(String nodeId, String accountId, char[] base32EncodedKey) throws Exception;
+
+    /**
+     * reads the secret of an account from the given node
+     * 
+     * @param nodeId
+     *            the node to read the secret from
+     * @param accountId
+     *            the account the secret belongs to
+     * @return a copy of the base32 encoded key of the account or null if
+     *         unknown
+     * @throws Exception
+     *             when we hit an issue
+     */
+    char[] getSecret(String nodeId, String accountId) throws Exception;
+
+    /**
+     * removes the secret of an account from the given node
+     * 
+     * @param nodeId
+     *            the node to remove the secret from
+     * @param accountId
+     *            the account the secret belongs to
+     * @return the base32 encoded key of the account or null if unknown
+     * @throws Exception
+     *             when we hit an issue
+     */
+    char[] removeSecret(String nodeId, String accountId) throws Exception;
+
+    /**
+     * lists the accounts stored on the given node
+     * 
+     * @param nodeId
+     *            the node to query
+     * @return the account ids stored on that node
+     * @throws Exception
+     *             when we hit an issue
+     */
+    Set<String> getAccountIds(String nodeId) throws Exception;
+}
@@ -0,0 +1,8 @@
+/**
+ * Partitions accounts and their secrets across several nodes using a
+ * consistent hash ring with virtual nodes.
+ * 
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+package de.whisperedshouts.tinymfa.sharding;
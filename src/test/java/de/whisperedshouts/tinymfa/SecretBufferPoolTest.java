@@ -0,0 +1,67 @@
+/**
+ * 
+ */
+package de.whisperedshouts.tinymfa;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+/**
+ * @author mario
+ *
+ */
+public class SecretBufferPoolTest {
+
+    @Test
+    public void testBorrowReturnsRequestedSize() {
+        byte[] buffer = SecretBufferPool.borrow(20);
+        assertEquals(20, buffer.length);
+        SecretBufferPool.release(buffer);
+    }
+
+    @Test
+    public void testReleaseZeroesBuffer() {
+        byte[] buffer = SecretBufferPool.borrow(16);
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) (i + 1);
+        }
+        SecretBufferPool.release(buffer);
+        assertArrayEquals(new byte[16], buffer);
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        byte[] buffer = SecretBufferPool.borrow(24);
+        SecretBufferPool.release(buffer);
+        byte[] reused = SecretBufferPool.borrow(24);
+        assertSame(buffer, reused);
+        SecretBufferPool.release(reused);
+    }
+
+    @Test
+    public void testBufferIsNotHandedOutTwice() {
+        byte[] buffer = SecretBufferPool.borrow(28);
+        SecretBufferPool.release(buffer);
+        SecretBufferPool.release(buffer);
+        byte[] first  = SecretBufferPool.borrow(28);
+        byte[] second = SecretBufferPool.borrow(28);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void testOversizedBufferIsNotPooled() {
+        byte[] buffer = SecretBufferPool.borrow(SecretBufferPool.MAX_POOLED_SIZE + 1);
+        buffer[0] = 1;
+        SecretBufferPool.release(buffer);
+        assertEquals(0, buffer[0]);
+        assertNotSame(buffer, SecretBufferPool.borrow(SecretBufferPool.MAX_POOLED_SIZE + 1));
+    }
+
+    @Test
+    public void testReleaseNull() {
+        SecretBufferPool.release(null);
+        SecretBufferPool.zeroize(null);
+    }
+}
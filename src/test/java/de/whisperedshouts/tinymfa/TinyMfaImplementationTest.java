@@ -94,4 +94,73 @@ public class TinyMfaImplementationTest {
         assertNotNull(message);
         assertEquals(MESSAGE_PRESENT, message);
     }
+    
+    @Test
+    public void testValidateTokenWithTimestamp() {
+        TinyMfaImplementation tinyMfa = new TinyMfaImplementation();
+        byte[] key                    = TESTKEY.getBytes();
+        try {
+            assertTrue(tinyMfa.validateToken((int) TOTP, key, TIMESTAMP));
+            assertTrue(tinyMfa.validateToken((int) TOTP, key, TIMESTAMP - 30000));
+            assertTrue(tinyMfa.validateToken((int) TOTP, key, TIMESTAMP + 30000));
+            assertFalse(tinyMfa.validateToken((int) TOTP, key, TIMESTAMP + 60000));
+            assertFalse(tinyMfa.validateToken((int) TOTP + 1, key, TIMESTAMP));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+    
+    @Test
+    public void testValidateTokenAgainstCurrentTime() {
+        TinyMfaImplementation tinyMfa = new TinyMfaImplementation();
+        try {
+            long message = TinyMfaImplementation.getValidMessageBySystemTimestamp(System.currentTimeMillis());
+            int token    = TinyMfaImplementation.generateValidToken(message, TESTKEY.getBytes());
+            assertTrue(tinyMfa.validateToken(token, TESTKEY.getBytes()));
+            assertTrue(tinyMfa.validateToken(token, TESTKEY.toCharArray()));
+
+            // the token of the very first time step must not be valid anymore
+            int epochToken = TinyMfaImplementation.generateValidToken(0L, TESTKEY.getBytes());
+            assertFalse(tinyMfa.validateToken(epochToken, TESTKEY.getBytes()));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGenerateValidTokenReleasesKeyBuffer() {
+        byte[] buffer = SecretBufferPool.borrow(TESTKEY.length());
+        SecretBufferPool.release(buffer);
+        try {
+            assertEquals(TOTP, TinyMfaImplementation.generateValidToken(MESSAGE_PRESENT, TESTKEY.toCharArray()));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+
+        // the converted key went back to the pool and was cleared
+        byte[] reused = SecretBufferPool.borrow(TESTKEY.length());
+        assertSame(buffer, reused);
+        assertArrayEquals(new byte[TESTKEY.length()], reused);
+        SecretBufferPool.release(reused);
+    }
+
+    @Test
+    public void testValidateTokenReleasesKeyBuffer() {
+        TinyMfaImplementation tinyMfa = new TinyMfaImplementation();
+        byte[] buffer                 = SecretBufferPool.borrow(TESTKEY.length());
+        SecretBufferPool.release(buffer);
+        try {
+            long message = TinyMfaImplementation.getValidMessageBySystemTimestamp(System.currentTimeMillis());
+            int token    = TinyMfaImplementation.generateValidToken(message, TESTKEY.getBytes());
+            assertTrue(tinyMfa.validateToken(token, TESTKEY.toCharArray()));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+
+        // the converted key went back to the pool and was cleared
+        byte[] reused = SecretBufferPool.borrow(TESTKEY.length());
+        assertSame(buffer, reused);
+        assertArrayEquals(new byte[TESTKEY.length()], reused);
+        SecretBufferPool.release(reused);
+    }
 }
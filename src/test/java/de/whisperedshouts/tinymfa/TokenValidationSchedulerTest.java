@@ -0,0 +1,288 @@
+/**
+ * 
+ */
+package de.whisperedshouts.tinymfa;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+
+/**
+ * @author mario
+ *
+ */
+public class TokenValidationSchedulerTest {
+
+    // 1592485571800 is 11.8 seconds into its step
+    public static final long MILLIS_UNTIL_BOUNDARY = 18200L;
+
+    @Test
+    public void testGetMillisUntilStepBoundary() {
+        long timestamp = TinyMfaImplementationTest.TIMESTAMP;
+        assertEquals(MILLIS_UNTIL_BOUNDARY, TokenValidationScheduler.getMillisUntilStepBoundary(timestamp));
+        assertEquals(1L, TokenValidationScheduler.getMillisUntilStepBoundary(timestamp + MILLIS_UNTIL_BOUNDARY - 1));
+        assertEquals(TokenValidationScheduler.STEP_MILLIS, 
+                TokenValidationScheduler.getMillisUntilStepBoundary(timestamp + MILLIS_UNTIL_BOUNDARY));
+    }
+
+    @Test
+    public void testIsBorderline() {
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(new TinyMfaImplementation(), 1, 1, 2000L);
+        long timestamp = TinyMfaImplementationTest.TIMESTAMP;
+        assertFalse(scheduler.isBorderline(timestamp));
+        assertTrue(scheduler.isBorderline(timestamp + MILLIS_UNTIL_BOUNDARY - 2000L));
+        assertFalse(scheduler.isBorderline(timestamp + MILLIS_UNTIL_BOUNDARY));
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testValidateTokenAtAdmissionTime() throws Exception {
+        long timestamp = TinyMfaImplementationTest.TIMESTAMP;
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(new TinyMfaImplementation(), 2, 16, 2000L,
+                () -> timestamp);
+
+        assertTrue(scheduler.submit((int) TinyMfaImplementationTest.TOTP, 
+                TinyMfaImplementationTest.TESTKEY.toCharArray()).get());
+        assertFalse(scheduler.submit((int) TinyMfaImplementationTest.TOTP + 1, 
+                TinyMfaImplementationTest.TESTKEY.getBytes()).get());
+        assertEquals(2L, scheduler.getAdmittedCount());
+        assertEquals(0L, scheduler.getBorderlineCount());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2L, scheduler.getCompletedCount());
+    }
+
+    @Test
+    public void testValidateBorderlineToken() throws Exception {
+        // the step is about to roll over, the token of the next step is valid already
+        long timestamp = TinyMfaImplementationTest.TIMESTAMP + MILLIS_UNTIL_BOUNDARY - 1000L - TokenValidationScheduler.STEP_MILLIS;
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(new TinyMfaImplementation(), 1, 16, 2000L,
+                () -> timestamp);
+
+        Future<Boolean> result = scheduler.submit((int) TinyMfaImplementationTest.TOTP, 
+                TinyMfaImplementationTest.TESTKEY.toCharArray());
+        assertTrue(result.get());
+        assertEquals(1L, scheduler.getBorderlineCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(blocking(started, release), 1, 2, 2000L);
+        byte[] key = TinyMfaImplementationTest.TESTKEY.getBytes();
+
+        // the first validation occupies the only worker
+        Future<Boolean> first = scheduler.submit(1, key);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.submit(2, key);
+        scheduler.submit(3, key);
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(2, scheduler.getPeakQueueDepth());
+
+        try {
+            scheduler.submit(4, key);
+            fail("queue should have been full");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1L, scheduler.getRejectedCount());
+        }
+
+        release.countDown();
+        assertTrue(first.get());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(2, scheduler.resetPeakQueueDepth());
+        assertEquals(0, scheduler.getPeakQueueDepth());
+    }
+
+    @Test
+    public void testCallerMayClearCharArrayKey() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TinyMfaImplementation tinyMfa = new TinyMfaImplementation() {
+            @Override
+            boolean validateToken(int token, byte[] base32EncodedKey, long systemTimestamp, int... offsetTypes)
+                    throws Exception {
+                if (token == 1) {
+                    started.countDown();
+                    release.await();
+                }
+                return super.validateToken(token, base32EncodedKey, systemTimestamp, offsetTypes);
+            }
+        };
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(tinyMfa, 1, 2, 2000L,
+                () -> TinyMfaImplementationTest.TIMESTAMP);
+
+        // the first validation occupies the only worker
+        Future<Boolean> first = scheduler.submit(1, TinyMfaImplementationTest.TESTKEY.getBytes());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the key is cleared while the validation is still waiting
+        char[] key             = TinyMfaImplementationTest.TESTKEY.toCharArray();
+        Future<Boolean> result = scheduler.submit((int) TinyMfaImplementationTest.TOTP, key);
+        Arrays.fill(key, '\0');
+
+        release.countDown();
+        assertFalse(first.get());
+        assertTrue(result.get());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testFailedSubmitDoesNotTakeQueueSlot() throws Exception {
+        long timestamp = TinyMfaImplementationTest.TIMESTAMP;
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(new TinyMfaImplementation(), 1, 2, 2000L,
+                () -> timestamp);
+
+        // more failures than the queue has slots
+        for (int i = 0; i < 3; i++) {
+            try {
+                scheduler.submit((int) TinyMfaImplementationTest.TOTP, (byte[]) null);
+                fail("a missing key should have been refused");
+            } catch (NullPointerException e) {
+                assertEquals(0, scheduler.getQueueDepth());
+            }
+        }
+
+        assertTrue(scheduler.submit((int) TinyMfaImplementationTest.TOTP, 
+                TinyMfaImplementationTest.TESTKEY.getBytes()).get());
+        assertEquals(1L, scheduler.getAdmittedCount());
+        assertEquals(0L, scheduler.getRejectedCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testFailingClockDoesNotTakeQueueSlot() throws Exception {
+        AtomicLong calls = new AtomicLong();
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(new TinyMfaImplementation(), 1, 2, 2000L,
+                () -> {
+                    // the clock fails for the first few admissions
+                    if (calls.incrementAndGet() <= 3) {
+                        throw new IllegalStateException("clock unavailable");
+                    }
+                    return TinyMfaImplementationTest.TIMESTAMP;
+                });
+        byte[] key = TinyMfaImplementationTest.TESTKEY.getBytes();
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                scheduler.submit((int) TinyMfaImplementationTest.TOTP, key);
+                fail("the clock should have failed");
+            } catch (IllegalStateException e) {
+                assertEquals(0, scheduler.getQueueDepth());
+            }
+        }
+
+        assertTrue(scheduler.submit((int) TinyMfaImplementationTest.TOTP, key).get());
+        assertEquals(1L, scheduler.getAdmittedCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testCancelledValidationLeavesQueue() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(blocking(started, release), 1, 1, 2000L);
+        byte[] key = TinyMfaImplementationTest.TESTKEY.getBytes();
+
+        // the first validation occupies the only worker
+        Future<Boolean> first = scheduler.submit(1, key);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // cancelling more validations than the queue can hold must not fill it up
+        for (int i = 0; i < 3; i++) {
+            Future<Boolean> queued = scheduler.submit(2, key);
+            assertEquals(1, scheduler.getQueueDepth());
+            assertTrue(queued.cancel(false));
+            assertEquals(0, scheduler.getQueueDepth());
+        }
+        assertEquals(3L, scheduler.getCancelledCount());
+        assertEquals(3L, scheduler.getCompletedCount());
+        assertEquals(0L, scheduler.getRejectedCount());
+
+        release.countDown();
+        assertTrue(first.get());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(4L, scheduler.getCompletedCount());
+    }
+
+    @Test
+    public void testBorderlineValidationIsServedFirst() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> tokens   = Collections.synchronizedList(new ArrayList<Integer>());
+        List<int[]> offsets    = Collections.synchronizedList(new ArrayList<int[]>());
+        TinyMfaImplementation recording = new TinyMfaImplementation() {
+            @Override
+            boolean validateToken(int token, byte[] base32EncodedKey, long systemTimestamp, int... offsetTypes)
+                    throws Exception {
+                if (token == 0) {
+                    started.countDown();
+                    release.await();
+                }
+                tokens.add(token);
+                offsets.add(offsetTypes);
+                return true;
+            }
+        };
+        AtomicLong clock = new AtomicLong(TinyMfaImplementationTest.TIMESTAMP);
+        TokenValidationScheduler scheduler = new TokenValidationScheduler(recording, 1, 16, 2000L, clock::get);
+        byte[] key = TinyMfaImplementationTest.TESTKEY.getBytes();
+
+        // the first validation occupies the only worker
+        scheduler.submit(0, key);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // a regular validation is queued before a borderline one
+        Future<Boolean> regular = scheduler.submit(1, key);
+        clock.set(TinyMfaImplementationTest.TIMESTAMP + MILLIS_UNTIL_BOUNDARY - 1000L);
+        Future<Boolean> borderline = scheduler.submit(2, key);
+        assertEquals(1L, scheduler.getBorderlineCount());
+
+        release.countDown();
+        assertTrue(regular.get());
+        assertTrue(borderline.get());
+
+        assertEquals(Arrays.asList(0, 2, 1), tokens);
+        assertArrayEquals(new int[] {
+                TinyMfaImplementation.OFFSET_FUTURE,
+                TinyMfaImplementation.OFFSET_PRESENT,
+                TinyMfaImplementation.OFFSET_PAST }, offsets.get(1));
+        assertArrayEquals(new int[] {
+                TinyMfaImplementation.OFFSET_PRESENT,
+                TinyMfaImplementation.OFFSET_PAST,
+                TinyMfaImplementation.OFFSET_FUTURE }, offsets.get(2));
+        scheduler.shutdown();
+    }
+
+    /**
+     * creates an implementation that blocks every validation until released
+     */
+    private static TinyMfaImplementation blocking(CountDownLatch started, CountDownLatch release) {
+        return new TinyMfaImplementation() {
+            @Override
+            boolean validateToken(int token, byte[] base32EncodedKey, long systemTimestamp, int... offsetTypes)
+                    throws Exception {
+                started.countDown();
+                release.await();
+                return true;
+            }
+        };
+    }
+}
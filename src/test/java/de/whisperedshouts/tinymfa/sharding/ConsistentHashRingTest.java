@@ -0,0 +1,106 @@
+/**
+ * 
+ */
+package de.whisperedshouts.tinymfa.sharding;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+/**
+ * @author mario
+ *
+ */
+public class ConsistentHashRingTest {
+
+    public static final int ACCOUNTS = 10000;
+
+    @Test
+    public void testEmptyRingReturnsNull() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        assertNull(ring.getNode("account"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidVirtualNodes() {
+        new ConsistentHashRing(0);
+    }
+
+    @Test
+    public void testLookupIsStable() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("node-a");
+        ring.addNode("node-b");
+        ring.addNode("node-c");
+        
+        String owner = ring.getNode("account");
+        assertNotNull(owner);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(owner, ring.getNode("account"));
+        }
+    }
+
+    @Test
+    public void testKeysAreSpreadAcrossNodes() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("node-a");
+        ring.addNode("node-b");
+        ring.addNode("node-c");
+        ring.addNode("node-d");
+
+        int[] counts = new int[4];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String owner = ring.getNode("account-" + i);
+            counts[owner.charAt(owner.length() - 1) - 'a']++;
+        }
+
+        // every node should get a reasonable share of the expected 25%
+        for (int count : counts) {
+            assertTrue(count > ACCOUNTS / 8);
+            assertTrue(count < ACCOUNTS / 2);
+        }
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesKeysToNewNode() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("node-a");
+        ring.addNode("node-b");
+        ring.addNode("node-c");
+
+        String[] before = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            before[i] = ring.getNode("account-" + i);
+        }
+
+        ring.addNode("node-d");
+        int moved = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String after = ring.getNode("account-" + i);
+            if (!after.equals(before[i])) {
+                assertEquals("node-d", after);
+                moved++;
+            }
+        }
+
+        // roughly a quarter of the keys should have moved, not more
+        assertTrue(moved > 0);
+        assertTrue(moved < ACCOUNTS / 2);
+    }
+
+    @Test
+    public void testRemovingNode() {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.addNode("node-a");
+        ring.addNode("node-b");
+        assertTrue(ring.containsNode("node-b"));
+
+        ring.removeNode("node-b");
+        assertFalse(ring.containsNode("node-b"));
+        assertEquals(1, ring.getNodes().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("node-a", ring.getNode("account-" + i));
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/**
+ * 
+ */
+package de.whisperedshouts.tinymfa.sharding;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.whisperedshouts.tinymfa.TinyMfaImplementation;
+import de.whisperedshouts.tinymfa.TinyMfaImplementationTest;
+
+
+/**
+ * @author mario
+ *
+ */
+public class ShardRouterTest {
+
+    public static final int ACCOUNTS = 1000;
+
+    private BlockingTransport transport;
+    private ShardRouter router;
+    private final AtomicReference<Exception> threadError = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new BlockingTransport();
+        router    = new ShardRouter(transport);
+        for (String nodeId : new String[] {"node-a", "node-b", "node-c"}) {
+            transport.register(createNode(nodeId));
+            router.addNode(nodeId);
+        }
+        for (int i = 0; i < ACCOUNTS; i++) {
+            router.storeSecret("account-" + i, TinyMfaImplementationTest.TESTKEY.toCharArray());
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void testNoNodeAvailable() throws Exception {
+        new ShardRouter(transport).getOwner("account-0");
+    }
+
+    @Test
+    public void testSecretIsStoredOnOwner() throws Exception {
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String accountId = "account-" + i;
+            String owner     = router.getOwner(accountId);
+            for (String nodeId : router.getNodes()) {
+                assertEquals(nodeId.equals(owner), transport.getAccountIds(nodeId).contains(accountId));
+            }
+        }
+    }
+
+    @Test
+    public void testValidateUnknownAccount() throws Exception {
+        assertFalse(router.validateToken("unknown", (int) TinyMfaImplementationTest.TOTP));
+    }
+
+    @Test
+    public void testAddNodeMovesOnlyNewlyOwnedAccounts() throws Exception {
+        transport.register(new ShardNode("node-d"));
+        int moved = router.addNode("node-d");
+
+        assertEquals(transport.getAccountIds("node-d").size(), moved);
+        assertTrue(moved > 0);
+        assertTrue(moved < ACCOUNTS / 2);
+        testSecretIsStoredOnOwner();
+    }
+
+    @Test
+    public void testRemoveNodeMovesItsAccounts() throws Exception {
+        int held  = transport.getAccountIds("node-b").size();
+        int moved = router.removeNode("node-b");
+
+        assertEquals(held, moved);
+        assertTrue(transport.getAccountIds("node-b").isEmpty());
+        assertFalse(router.getNodes().contains("node-b"));
+        testSecretIsStoredOnOwner();
+    }
+
+    @Test
+    public void testRemoveSecret() throws Exception {
+        String owner = router.getOwner("account-0");
+        router.removeSecret("account-0");
+        assertFalse(transport.getAccountIds(owner).contains("account-0"));
+    }
+
+    @Test
+    public void testAddUnregisteredNode() throws Exception {
+        try {
+            router.addNode("node-d");
+            fail("adding an unregistered node should fail");
+        } catch (Exception e) {
+            assertFalse(router.getNodes().contains("node-d"));
+        }
+        testSecretIsStoredOnOwner();
+
+        // once registered, the node can be added
+        transport.register(createNode("node-d"));
+        assertTrue(router.addNode("node-d") > 0);
+        testSecretIsStoredOnOwner();
+    }
+
+    @Test
+    public void testFailedRebalanceIsRolledBack() throws Exception {
+        transport.register(createNode("node-d"));
+        transport.failStoreAfter.set(10);
+        try {
+            router.addNode("node-d");
+            fail("the rebalance should have failed");
+        } catch (Exception e) {
+            assertFalse(router.getNodes().contains("node-d"));
+        }
+
+        // the copies made before the failure are gone again
+        assertTrue(transport.getAccountIds("node-d").isEmpty());
+        testSecretIsStoredOnOwner();
+
+        // a retry succeeds
+        transport.failStoreAfter.set(-1);
+        assertTrue(router.addNode("node-d") > 0);
+        testSecretIsStoredOnOwner();
+    }
+
+    @Test
+    public void testStoreSecretWaitsForRebalance() throws Exception {
+        char[] newKey = TinyMfaImplementation.generateBase32EncodedSecretKeyCharArray();
+        int newToken  = TinyMfaImplementation.generateValidToken(TinyMfaImplementationTest.MESSAGE_PRESENT, newKey);
+
+        transport.register(createNode("node-d"));
+        transport.blockStore = true;
+        Thread rebalance = startThread(() -> router.addNode("node-d"));
+        assertTrue(transport.storeReached.await(5, TimeUnit.SECONDS));
+
+        // replace every secret while the rebalance is still copying
+        Thread writer = startThread(() -> {
+            for (int i = 0; i < ACCOUNTS; i++) {
+                router.storeSecret("account-" + i, newKey);
+            }
+            return null;
+        });
+
+        transport.storeRelease.countDown();
+        rebalance.join(5000);
+        writer.join(5000);
+        assertFalse(rebalance.isAlive() || writer.isAlive());
+        assertNull(threadError.get());
+
+        // the moved old secrets did not overwrite the new ones
+        testSecretIsStoredOnOwner();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertTrue(router.validateToken("account-" + i, newToken));
+        }
+    }
+
+    @Test
+    public void testValidateToken() throws Exception {
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertTrue(router.validateToken("account-" + i, (int) TinyMfaImplementationTest.TOTP));
+            assertFalse(router.validateToken("account-" + i, (int) TinyMfaImplementationTest.TOTP + 1));
+        }
+    }
+
+    @Test
+    public void testValidateTokenDuringRebalance() throws Exception {
+        transport.register(createNode("node-d"));
+        transport.blockStore  = true;
+        transport.blockRemove = true;
+        Thread rebalance = startThread(() -> router.addNode("node-d"));
+
+        // nothing has been copied yet, the accounts moving to node-d are
+        // only found on their previous owner
+        assertTrue(transport.storeReached.await(5, TimeUnit.SECONDS));
+        assertTrue(router.getNodes().contains("node-d"));
+        assertAllTokensValid();
+
+        // everything has been copied, the old owners are being cleaned up
+        transport.storeRelease.countDown();
+        assertTrue(transport.removeReached.await(5, TimeUnit.SECONDS));
+        assertAllTokensValid();
+
+        transport.removeRelease.countDown();
+        rebalance.join(5000);
+        assertFalse(rebalance.isAlive());
+        assertNull(threadError.get());
+        assertAllTokensValid();
+        testSecretIsStoredOnOwner();
+    }
+
+    @Test
+    public void testValidateTokenDuringRollback() throws Exception {
+        String accountId = findAccountMovingTo("node-d");
+        AtomicBoolean result = new AtomicBoolean();
+
+        transport.register(createNode("node-d"));
+        transport.blockStore      = true;
+        transport.blockValidateOn = "node-d";
+        Thread rebalance = startThread(() -> router.addNode("node-d"));
+        assertTrue(transport.storeReached.await(5, TimeUnit.SECONDS));
+
+        // the validation looks on node-d, which has no copy yet
+        Thread validation = startThread(() -> {
+            result.set(router.validateToken(accountId, (int) TinyMfaImplementationTest.TOTP));
+            return null;
+        });
+        assertTrue(transport.validateReached.await(5, TimeUnit.SECONDS));
+
+        // the next copy fails and the rebalance is rolled back meanwhile
+        transport.failStoreAfter.set(0);
+        transport.storeRelease.countDown();
+        rebalance.join(5000);
+        assertFalse(rebalance.isAlive());
+        assertFalse(router.getNodes().contains("node-d"));
+        threadError.set(null);
+
+        transport.validateRelease.countDown();
+        validation.join(5000);
+        assertFalse(validation.isAlive());
+        assertNull(threadError.get());
+        assertTrue(result.get());
+    }
+
+    @Test
+    public void testValidateTokenWhileRebalanceCompletes() throws Exception {
+        String accountId = findAccountMovingTo("node-d");
+        String oldOwner  = router.getOwner(accountId);
+        AtomicBoolean result = new AtomicBoolean();
+
+        // the validation looks on the old owner
+        transport.blockValidateOn = oldOwner;
+        Thread validation = startThread(() -> {
+            result.set(router.validateToken(accountId, (int) TinyMfaImplementationTest.TOTP));
+            return null;
+        });
+        assertTrue(transport.validateReached.await(5, TimeUnit.SECONDS));
+
+        // the account moves away and is removed from the old owner meanwhile
+        transport.register(createNode("node-d"));
+        router.addNode("node-d");
+        assertFalse(transport.getAccountIds(oldOwner).contains(accountId));
+
+        transport.validateRelease.countDown();
+        validation.join(5000);
+        assertFalse(validation.isAlive());
+        assertNull(threadError.get());
+        assertTrue(result.get());
+    }
+
+    /**
+     * finds an account that moves to the given node once it is added
+     */
+    private String findAccountMovingTo(String nodeId) {
+        ConsistentHashRing next = new ConsistentHashRing();
+        for (String node : router.getNodes()) {
+            next.addNode(node);
+        }
+        next.addNode(nodeId);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            if (nodeId.equals(next.getNode("account-" + i))) {
+                return "account-" + i;
+            }
+        }
+        throw new IllegalStateException("no account moves to " + nodeId);
+    }
+
+    /**
+     * checks that the current token is accepted for every account
+     */
+    private void assertAllTokensValid() throws Exception {
+        for (int i = 0; i < ACCOUNTS; i++) {
+            assertTrue("account-" + i, router.validateToken("account-" + i, (int) TinyMfaImplementationTest.TOTP));
+        }
+    }
+
+    /**
+     * creates a node validating at a fixed point in time
+     */
+    private static ShardNode createNode(String nodeId) {
+        return new ShardNode(nodeId, () -> TinyMfaImplementationTest.TIMESTAMP);
+    }
+
+    /**
+     * runs a call on a new thread, remembering the first error it throws
+     */
+    private Thread startThread(Callable<?> callable) {
+        Thread thread = new Thread(() -> {
+            try {
+                callable.call();
+            } catch (Exception e) {
+                threadError.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * An in process transport that can be told to block or fail while
+     * storing or removing secrets
+     */
+    private static class BlockingTransport extends InProcessShardTransport {
+
+        // fail every store after this many more stores, -1 to never fail
+        final AtomicInteger failStoreAfter = new AtomicInteger(-1);
+
+        // block the next store until released
+        volatile boolean blockStore;
+        final CountDownLatch storeReached  = new CountDownLatch(1);
+        final CountDownLatch storeRelease  = new CountDownLatch(1);
+
+        // block the next validation on this node until released
+        volatile String blockValidateOn;
+        final CountDownLatch validateReached = new CountDownLatch(1);
+        final CountDownLatch validateRelease = new CountDownLatch(1);
+
+        // block the next remove until released
+        volatile boolean blockRemove;
+        final CountDownLatch removeReached = new CountDownLatch(1);
+        final CountDownLatch removeRelease = new CountDownLatch(1);
+
+        @Override
+        public void storeSecret(String nodeId, String accountId, char[] base32EncodedKey) throws Exception {
+            if (failStoreAfter.get() == 0) {
+                throw new Exception("store failed");
+            }
+            failStoreAfter.getAndUpdate(n -> n > 0 ? n - 1 : n);
+            if (blockStore) {
+                blockStore = false;
+                storeReached.countDown();
+                storeRelease.await();
+            }
+            super.storeSecret(nodeId, accountId, base32EncodedKey);
+        }
+
+        @Override
+        public boolean validateToken(String nodeId, String accountId, int token) throws Exception {
+            if (nodeId.equals(blockValidateOn)) {
+                blockValidateOn = null;
+                validateReached.countDown();
+                validateRelease.await();
+            }
+            return super.validateToken(nodeId, accountId, token);
+        }
+
+        @Override
+        public char[] removeSecret(String nodeId, String accountId) throws Exception {
+            if (blockRemove) {
+                blockRemove = false;
+                removeReached.countDown();
+                removeRelease.await();
+            }
+            return super.removeSecret(nodeId, accountId);
+        }
+    }
+}